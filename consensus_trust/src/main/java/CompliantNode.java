@@ -1,7 +1,10 @@
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.function.ObjDoubleConsumer;
 import java.util.stream.IntStream;
 
 /**
@@ -12,6 +15,21 @@ import java.util.stream.IntStream;
  */
 public class CompliantNode implements Node {
 
+    /** rows (hash functions) of the vote count sketch */
+    private static final int SKETCH_DEPTH = 4;
+
+    /**
+     *  sketch counters per row for each transaction which could reach the vote threshold,
+     *  keeping the expected load of a counter at a quarter of the threshold
+     */
+    private static final int SKETCH_COUNTERS_PER_CANDIDATE = 4;
+
+    /** most memory (in bytes) a node may spend on its vote count sketch */
+    private static final int SKETCH_MEMORY_BUDGET = 1 << 20;
+
+    /** largest number of counters per row of the vote count sketch, within its memory budget */
+    private static final int MAX_SKETCH_WIDTH = SKETCH_MEMORY_BUDGET / (SKETCH_DEPTH * Integer.BYTES);
+
     private final int numRounds;
     private final double pTxDistribution;
     private final double pMmalicious;
@@ -21,6 +39,8 @@ public class CompliantNode implements Node {
     private int receiveRound;
     private Map<Integer, Set<Transaction>> followeeTransactionsMap;
     private boolean[] blacklist;
+    private boolean sketchVoteCounting;
+    private ObjDoubleConsumer<String> metricsRecorder;
 
     /**
      *  @param p_graph probability that an edge will exist
@@ -40,6 +60,30 @@ public class CompliantNode implements Node {
         this.followeeTransactionsMap = new HashMap<>();
     }
 
+    /**
+     *  @param p_sketchVoteCounting true to count consensus votes using a count-min sketch to
+     *                              find candidates, recounting only those exactly; false
+     *                              (default) to count every transaction exactly.  Both produce
+     *                              the same consensus set.  With V total votes and threshold T,
+     *                              the sketch mode holds 16V/T to 32V/T counters (at most 1 MiB)
+     *                              plus at most 2V/T candidates, so it saves memory only when
+     *                              transactions average far fewer than T votes each (many
+     *                              distinct transactions, few of which reach consensus).  When T
+     *                              is 0 or 1, when the sketch wouldn't fit in 1 MiB, or when the
+     *                              candidates exceed their bound, it falls back to exact counting.
+     */
+    public void setSketchVoteCounting(final boolean p_sketchVoteCounting) {
+        this.sketchVoteCounting = p_sketchVoteCounting;
+    }
+
+    /**
+     *  @param p_metricsRecorder receiver of (metric name, value) samples describing each round,
+     *                           or null (default) to record nothing
+     */
+    public void setMetricsRecorder(final ObjDoubleConsumer<String> p_metricsRecorder) {
+        this.metricsRecorder = p_metricsRecorder;
+    }
+
     @Override
     public void setFollowees(final boolean[] p_followees) {
         // the Simulation only sends transactions from followees
@@ -90,6 +134,7 @@ public class CompliantNode implements Node {
     private void performGatheringRound(final Set<Candidate> p_candidates) {
 
         final Map<Integer, Set<Transaction>> senderTransactionMap = getSenderTransactionMap(p_candidates);
+        int nNewlyBlacklisted = 0;
 
         // 1: ensure we hear of everything we've heard of before
         for (final Map.Entry<Integer, Set<Transaction>> ftme : followeeTransactionsMap.entrySet()) {
@@ -107,12 +152,14 @@ public class CompliantNode implements Node {
                     // blacklist the followee since it didn't deliver all of the transactions it previously did
                     System.out.printf("blacklisted(%s) in round(%s) since omitted some txs it previously sent\n", followee, receiveRound);
                     blacklist[followee] = true;
+                    nNewlyBlacklisted++;
                 }
             } else {
                 // we heard from this sender during previous rounds
                 // but not during this round, so we disqualify it
                 System.out.printf("blacklisted(%s) in round(%s) since didn't send anything\n", followee, receiveRound);
                 blacklist[followee] = true;
+                nNewlyBlacklisted++;
             }
         }
 
@@ -136,25 +183,18 @@ public class CompliantNode implements Node {
             followeeTransactions.addAll(newlyProposedFolloweeTransactions);
         }
 
+        if (metricsRecorder != null) {
+            metricsRecorder.accept("candidatesReceived", p_candidates.size());
+            metricsRecorder.accept("sendersHeard", senderTransactionMap.size());
+            metricsRecorder.accept("blacklistGrowth", nNewlyBlacklisted);
+            metricsRecorder.accept("blacklistSize", getCount(blacklist));
+        }
+
     }
 
     // judgement time: reduce transactions into single set, by popularity
     private void performConsensusRound() {
 
-        // produce a count of votes for each transaction
-        final Map<Transaction, Integer> transactionVotesMap = new HashMap<>();
-        for (final Map.Entry<Integer, Set<Transaction>> ftme : followeeTransactionsMap.entrySet()) {
-            final int server = ftme.getKey();
-            if (server >= 0 && blacklist[server]) {
-                continue;
-            }
-            System.out.printf("server(%s) voted for(%s) transactions\n", server, ftme.getValue().size());
-            for (final Transaction tx : ftme.getValue()) {
-                final Integer txVotes = transactionVotesMap.get(tx);
-                transactionVotesMap.put(tx, (txVotes == null) ? 1 : txVotes + 1);
-            }
-        }
-
         // We expect transactions to be voted on exactly once by all compliant nodes
         // which "saw" the transaction, and we assume that by this time (the final
         // round) all nodes will have seen all transactions.  Since we can calculate
@@ -165,6 +205,15 @@ public class CompliantNode implements Node {
         final int nBlacklisted = getCount(blacklist);
         final int minVoteCount = (int) ((nFollowees - nBlacklisted) * pMmalicious);
         System.out.printf("nBlacklisted(%s), minVoteCount(%s)\n", nBlacklisted, minVoteCount);
+
+        // produce a count of votes for each transaction
+        final List<Set<Transaction>> trustedVotes = getTrustedVotes();
+        final Map<Transaction, Integer> transactionVotesMap = sketchVoteCounting
+            ? countCandidateVotes(trustedVotes, minVoteCount)
+            : countVotes(trustedVotes)
+        ;
+        recordMetric("countedTransactions", transactionVotesMap.size());
+
         final Set<Transaction> consensusTransactions = new HashSet<>();
         for (final Map.Entry<Transaction, Integer> tvme : transactionVotesMap.entrySet()) {
             if (tvme.getValue() >= minVoteCount) {
@@ -177,6 +226,119 @@ public class CompliantNode implements Node {
         followeeTransactionsMap.put(-2, consensusTransactions);
     }
 
+    /**
+     *  @return transactions voted for by each server which isn't blacklisted (including "self")
+     */
+    private List<Set<Transaction>> getTrustedVotes() {
+        final List<Set<Transaction>> trustedVotes = new ArrayList<>(followeeTransactionsMap.size());
+        for (final Map.Entry<Integer, Set<Transaction>> ftme : followeeTransactionsMap.entrySet()) {
+            final int server = ftme.getKey();
+            if (server >= 0 && blacklist[server]) {
+                continue;
+            }
+            System.out.printf("server(%s) voted for(%s) transactions\n", server, ftme.getValue().size());
+            trustedVotes.add(ftme.getValue());
+        }
+        return trustedVotes;
+    }
+
+    /**
+     *  @param trustedVotes transactions voted for by each trusted server
+     *  @return exact count of votes for every transaction
+     */
+    private static Map<Transaction, Integer> countVotes(final List<Set<Transaction>> trustedVotes) {
+        final Map<Transaction, Integer> transactionVotesMap = new HashMap<>();
+        for (final Set<Transaction> votes : trustedVotes) {
+            for (final Transaction tx : votes) {
+                final Integer txVotes = transactionVotesMap.get(tx);
+                transactionVotesMap.put(tx, (txVotes == null) ? 1 : txVotes + 1);
+            }
+        }
+        return transactionVotesMap;
+    }
+
+    /**
+     *  Counts votes in memory proportional to (total votes / {@code minVoteCount}), within the
+     *  sketch's memory budget, rather than to the number of distinct transactions: since the
+     *  sketch never underestimates, every transaction having at least {@code minVoteCount} votes
+     *  is a candidate, and its exact recount equals that of {@link #countVotes}.  Falls back to
+     *  {@link #countVotes} when filtering can't help, or the sketch wouldn't fit its budget.
+     *  @param trustedVotes transactions voted for by each trusted server
+     *  @param minVoteCount number of votes needed for consensus
+     *  @return exact count of votes for each candidate transaction
+     */
+    private Map<Transaction, Integer> countCandidateVotes(
+        final List<Set<Transaction>> trustedVotes,
+        final int minVoteCount
+    ) {
+
+        if (minVoteCount <= 1) {
+            // every transaction voted for reaches the threshold, so there's nothing to filter
+            recordMetric("voteCountingFallback", 1);
+            return countVotes(trustedVotes);
+        }
+
+        // at most (total votes / minVoteCount) transactions can reach the threshold
+        long nVotes = 0;
+        for (final Set<Transaction> votes : trustedVotes) {
+            nVotes += votes.size();
+        }
+        final long maxQualifying = nVotes / minVoteCount;
+        final long maxCandidates = 2 * maxQualifying;
+        final long width = Long.highestOneBit(Math.max(2L, SKETCH_COUNTERS_PER_CANDIDATE * maxQualifying) - 1) << 1;
+        if (width > MAX_SKETCH_WIDTH) {
+            // a sketch which filters well wouldn't fit in its budget: don't allocate one at all
+            recordMetric("voteCountingFallback", 1);
+            return countVotes(trustedVotes);
+        }
+        recordMetric("sketchWidth", width);
+
+        // 1: approximate counts
+        final VoteCountSketch<Transaction> sketch = new VoteCountSketch<>((int) width, SKETCH_DEPTH);
+        for (final Set<Transaction> votes : trustedVotes) {
+            for (final Transaction tx : votes) {
+                sketch.add(tx);
+            }
+        }
+
+        // 2: candidates are transactions whose estimate reaches the threshold
+        final Map<Transaction, Integer> transactionVotesMap = new HashMap<>();
+        for (final Set<Transaction> votes : trustedVotes) {
+            for (final Transaction tx : votes) {
+                if (sketch.estimate(tx) >= minVoteCount) {
+                    transactionVotesMap.put(tx, 0);
+                    if (transactionVotesMap.size() > maxCandidates) {
+                        // too many false positives for the sketch to save anything
+                        recordMetric("voteCountingFallback", 1);
+                        return countVotes(trustedVotes);
+                    }
+                }
+            }
+        }
+
+        // 3: exact recount of the candidates only
+        for (final Set<Transaction> votes : trustedVotes) {
+            for (final Transaction tx : votes) {
+                final Integer txVotes = transactionVotesMap.get(tx);
+                if (txVotes != null) {
+                    transactionVotesMap.put(tx, txVotes + 1);
+                }
+            }
+        }
+        recordMetric("voteCountingFallback", 0);
+        return transactionVotesMap;
+    }
+
+    /**
+     *  @param metric name of the metric
+     *  @param value value of the metric for the current round
+     */
+    private void recordMetric(final String metric, final double value) {
+        if (metricsRecorder != null) {
+            metricsRecorder.accept(metric, value);
+        }
+    }
+
     /**
      *  @param p_candidates candidate transactions proposed by followee nodes
      *  @return map of node index to the set of transaction(s) proposed by that node
@@ -197,4 +359,76 @@ public class CompliantNode implements Node {
         return senderTransactionMap;
     }
 
+
+    //
+    //  Private classes
+    //
+
+    /**
+     *  Count-min sketch: approximate vote counts in fixed memory.  Estimates never fall below
+     *  the true count, so every item with at least a given number of votes is found by selecting
+     *  items whose estimate reaches that number (along with a few false positives).
+     *  @param <T> type of the items voted for
+     */
+    private static final class VoteCountSketch<T> {
+
+        /** counters, one row per hash function */
+        private final int[][] counts;
+
+        /** mask selecting a column (width is a power of 2) */
+        private final int columnMask;
+
+        /**
+         *  @param width number of counters per row (a power of 2)
+         *  @param depth number of rows (hash functions)
+         */
+        VoteCountSketch(final int width, final int depth) {
+            if (width <= 0 || Integer.bitCount(width) != 1 || depth <= 0) {
+                throw new IllegalArgumentException(String.format("width(%s), depth(%s)", width, depth));
+            }
+            this.counts = new int[depth][width];
+            this.columnMask = width - 1;
+        }
+
+        /**
+         *  @param item item receiving a vote
+         */
+        void add(final T item) {
+            final int hash = item.hashCode();
+            for (int row = 0; row < counts.length; row++) {
+                counts[row][column(row, hash)]++;
+            }
+        }
+
+        /**
+         *  @param item item whose votes are to be estimated
+         *  @return estimated number of votes for {@code item} (never less than the true number)
+         */
+        int estimate(final T item) {
+            final int hash = item.hashCode();
+            int estimate = Integer.MAX_VALUE;
+            for (int row = 0; row < counts.length; row++) {
+                estimate = Math.min(estimate, counts[row][column(row, hash)]);
+            }
+            return estimate;
+        }
+
+        /**
+         *  @param row row of the counter
+         *  @param hash hash code of an item
+         *  @return column of the item's counter in {@code row}
+         */
+        private int column(final int row, final int hash) {
+            // independent mix of the item's hash code for each row
+            int h = hash * 0x9e3779b9 + row * 0x85ebca6b;
+            h ^= h >>> 16;
+            h *= 0x7feb352d;
+            h ^= h >>> 15;
+            h *= 0x846ca68b;
+            h ^= h >>> 16;
+            return h & columnMask;
+        }
+
+    }
+
 }
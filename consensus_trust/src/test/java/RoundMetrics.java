@@ -0,0 +1,135 @@
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ *  Coursera Introduction to Crypto Currency Course<p />
+ *  Assignment2: Consensus Trust<br />
+ *  Lightweight recorder of per-round simulation metrics, exported as a time series of
+ *  (round, node, metric, value) samples in CSV or JSON.  Recording is disabled by default,
+ *  in which case {@link #record} returns immediately; callers should guard any work done
+ *  only to compute a metric with {@link #isEnabled}.  Nodes don't depend on this class: the
+ *  Simulation hands {@link #record(String, double)} to them as a recorder hook.
+ *  @author Marty Ross
+ */
+public final class RoundMetrics {
+
+    /** node index of samples describing the whole simulation rather than a single node */
+    public static final int ALL_NODES = -1;
+
+    /** a single recorded value */
+    private static final class Sample {
+        final int round;
+        final int node;
+        final String metric;
+        final double value;
+        Sample(final int round, final int node, final String metric, final double value) {
+            this.round = round;
+            this.node = node;
+            this.metric = metric;
+            this.value = value;
+        }
+    }
+
+    /** recorded samples, or null if recording is disabled */
+    private static List<Sample> sSamples;
+
+    /** round and node to which subsequently recorded samples belong */
+    private static int sRound;
+    private static int sNode = ALL_NODES;
+
+    private RoundMetrics() {
+        // static methods only
+    }
+
+    /**
+     *  Starts recording (discarding any previously recorded samples)
+     */
+    public static void enable() {
+        sSamples = new ArrayList<>();
+    }
+
+    /**
+     *  @return true if samples are being recorded
+     */
+    public static boolean isEnabled() {
+        return sSamples != null;
+    }
+
+    /**
+     *  @param round round to which subsequently recorded samples belong
+     *  @param node index of the node to which subsequently recorded samples belong, or {@link #ALL_NODES}
+     */
+    public static void setContext(final int round, final int node) {
+        sRound = round;
+        sNode = node;
+    }
+
+    /**
+     *  @param metric name of the metric
+     *  @param value value of the metric for the current round and node
+     */
+    public static void record(final String metric, final double value) {
+        record(sNode, metric, value);
+    }
+
+    /**
+     *  @param node index of the node described by the sample, or {@link #ALL_NODES}
+     *  @param metric name of the metric
+     *  @param value value of the metric for the current round
+     */
+    public static void record(final int node, final String metric, final double value) {
+        if (sSamples == null) {
+            return;
+        }
+        sSamples.add(new Sample(sRound, node, metric, value));
+    }
+
+    /**
+     *  @param path file to receive the recorded samples: JSON if its name ends with ".json", else CSV
+     */
+    public static void export(final Path path) throws IOException {
+        if (sSamples == null) {
+            throw new IllegalStateException("metrics not enabled");
+        }
+        try (final PrintWriter out = new PrintWriter(Files.newBufferedWriter(path))) {
+            if (path.getFileName().toString().endsWith(".json")) {
+                writeJson(out);
+            } else {
+                writeCsv(out);
+            }
+        }
+    }
+
+
+    //
+    //  Private class methods
+    //
+
+    private static void writeCsv(final PrintWriter out) {
+        out.println("round,node,metric,value");
+        for (final Sample s : sSamples) {
+            out.printf("%s,%s,%s,%s\n", s.round, s.node, s.metric, s.value);
+        }
+    }
+
+    private static void writeJson(final PrintWriter out) {
+        out.println("[");
+        for (int i = 0; i < sSamples.size(); i++) {
+            final Sample s = sSamples.get(i);
+            out.printf(
+                "  {\"round\": %s, \"node\": %s, \"metric\": \"%s\", \"value\": %s}%s\n",
+                s.round,
+                s.node,
+                s.metric,
+                Double.isFinite(s.value) ? s.value : "null",
+                (i + 1 < sSamples.size()) ? "," : ""
+            );
+        }
+        out.println("]");
+    }
+
+}
@@ -4,8 +4,12 @@
 // test your nodes. You will want to try creating some deviant nodes and
 // mixing them in the network to fully test.
 
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Random;
@@ -22,7 +26,24 @@ public class Simulation {
     private static final int DEBUG_VERBOSITY = 100;
     private static final int VERBOSITY = DEBUG_VERBOSITY;
 
-    public static void main(String[] args) {
+    /** system property naming the file (.csv or .json) to receive per-round metrics, if any */
+    private static final String METRICS_PROPERTY = "simulation.metrics";
+
+    /**
+     *  system property which, if "true", makes compliant nodes count votes using a sketch; or if
+     *  "verify", runs the simulation with exact and then sketch vote counting (same seed) and
+     *  fails unless every node ends with the same transaction set in both runs.  When verifying,
+     *  each run's metrics go to their own file, named with an "-exact" or "-sketch" suffix.
+     */
+    private static final String SKETCH_VOTES_PROPERTY = "simulation.sketchVotes";
+
+    /** system property giving the random seed (default: a different seed for each run) */
+    private static final String SEED_PROPERTY = "simulation.seed";
+
+    /** estimated size of a candidate on the wire: transaction id and sender index */
+    private static final int CANDIDATE_BYTES = 2 * Integer.SIZE / 8;
+
+    public static void main(String[] args) throws IOException {
 
         // There are four required command line arguments: p_graph (.1, .2, .3),
         // p_malicious (.15, .30, .45), p_txDistribution (.01, .05, .10),
@@ -38,26 +59,76 @@ public class Simulation {
             numNodes = Integer.parseInt(args[4]); // number of nodes to create
         }
 
+        final String metricsFile = System.getProperty(METRICS_PROPERTY);
+        final long seed = Long.getLong(SEED_PROPERTY, System.nanoTime());
+        final String sketchVotes = System.getProperty(SKETCH_VOTES_PROPERTY, "false");
+
+        if (sketchVotes.equals("verify")) {
+            final List<Set<Transaction>> exactSets = simulate(p_graph, p_malicious, p_txDistribution, numRounds, numNodes, seed, false, suffixed(metricsFile, "-exact"));
+            final List<Set<Transaction>> sketchSets = simulate(p_graph, p_malicious, p_txDistribution, numRounds, numNodes, seed, true, suffixed(metricsFile, "-sketch"));
+            for (int i = 0; i < numNodes; i++) {
+                if (!exactSets.get(i).equals(sketchSets.get(i))) {
+                    throw new IllegalStateException(
+                        String.format("node(%s) consensus differs: exact(%s), sketch(%s) transactions", i, exactSets.get(i).size(), sketchSets.get(i).size())
+                    );
+                }
+            }
+            log(STD_VERBOSITY, String.format("sketch vote counting matches exact counting for all(%s) nodes", numNodes));
+            return;
+        }
+
+        simulate(p_graph, p_malicious, p_txDistribution, numRounds, numNodes, seed, Boolean.parseBoolean(sketchVotes), metricsFile);
+
+    }
+
+    /**
+     *  @param seed seed of the simulation's random choices
+     *  @param sketchVotes true if compliant nodes count votes using a sketch
+     *  @param metricsFile file to receive per-round metrics, or null
+     *  @return transactions each node believes consensus was reached upon
+     */
+    private static List<Set<Transaction>> simulate(
+        final double p_graph,
+        final double p_malicious,
+        final double p_txDistribution,
+        final int numRounds,
+        final int numNodes,
+        final long seed,
+        final boolean sketchVotes,
+        final String metricsFile
+    ) throws IOException {
+
+        if (metricsFile != null) {
+            RoundMetrics.enable();
+        }
+
         log(
             STD_VERBOSITY,
             String.format(
-                "starting(p_graph=%s, p_malicious=%s, p_txDistribution=%s, numRounds=%s, numNodes=%s)",
-                p_graph, p_malicious, p_txDistribution, numRounds, numNodes
+                "starting(p_graph=%s, p_malicious=%s, p_txDistribution=%s, numRounds=%s, numNodes=%s, seed=%s, sketchVotes=%s)",
+                p_graph, p_malicious, p_txDistribution, numRounds, numNodes, seed, sketchVotes
             )
         );
 
+        final Random random = new Random(seed);
+
         // pick which nodes are malicious and which are compliant
         Node[] nodes = new Node[numNodes];
         int nMaliciousNodes = 0;
         for (int i = 0; i < numNodes; i++) {
-            if (Math.random() < p_malicious) {
+            if (random.nextDouble() < p_malicious) {
                 // When you are ready to try testing with malicious nodes, replace the
                 // instantiation below with an instantiation of a MaliciousNode
                 nodes[i] = createMaliciousNode(p_graph, p_malicious, p_txDistribution, numRounds);
                 nMaliciousNodes++;
             }
             else {
-                nodes[i] = new CompliantNode(p_graph, p_malicious, p_txDistribution, numRounds);
+                final CompliantNode compliantNode = new CompliantNode(p_graph, p_malicious, p_txDistribution, numRounds);
+                compliantNode.setSketchVoteCounting(sketchVotes);
+                if (RoundMetrics.isEnabled()) {
+                    compliantNode.setMetricsRecorder(RoundMetrics::record);
+                }
+                nodes[i] = compliantNode;
             }
         }
         System.out.printf("nMaliciousNodes(%s) out of(%s), or(%.0f%%)\n", nMaliciousNodes, numNodes, 100d * nMaliciousNodes / numNodes);
@@ -67,7 +138,7 @@ public class Simulation {
         for (int i = 0; i < numNodes; i++) {
             for (int j = 0; j < numNodes; j++) {
                 if (i == j) continue;
-                if (Math.random() < p_graph) { // p_graph is .1, .2, or .3
+                if (random.nextDouble() < p_graph) { // p_graph is .1, .2, or .3
                     followees[i][j] = true;
                 }
             }
@@ -80,7 +151,6 @@ public class Simulation {
         // initialize a set of 500 valid Transactions with random ids
         int numTx = 500;
         HashSet<Integer> validTxIds = new HashSet<>();
-        Random random = new Random();
         for (int i = 0; i < numTx; i++) {
             int r = random.nextInt();
             validTxIds.add(r);
@@ -93,7 +163,7 @@ public class Simulation {
         for (int i = 0; i < numNodes; i++) {
             HashSet<Transaction> pendingTransactions = new HashSet<>();
             for (Integer txID : validTxIds) {
-                if (Math.random() < p_txDistribution) // p_txDistribution is .01, .05, or .10.
+                if (random.nextDouble() < p_txDistribution) // p_txDistribution is .01, .05, or .10.
                     pendingTransactions.add(new Transaction(txID));
             }
             nodes[i].setPendingTransaction(pendingTransactions);
@@ -104,15 +174,24 @@ public class Simulation {
         for (int round = 1; round <= numRounds; round++) {
 
             log(STD_VERBOSITY, String.format("round(%s)", round));
+            RoundMetrics.setContext(round, RoundMetrics.ALL_NODES);
+
+            // collect the proposals of each node
+            final long sendStartNanos = System.nanoTime();
+            final List<Set<Transaction>> allNodeProposals = new ArrayList<>(numNodes);
+            for (int i = 0; i < numNodes; i++) {
+                allNodeProposals.add(nodes[i].sendToFollowers());
+            }
 
             // gather all the proposals into a map. The key is the index of the node receiving
             // proposals. The value is an ArrayList containing 1x2 Integer arrays. The first
             // element of each array is the id of the transaction being proposed and the second
             // element is the index # of the node proposing the transaction.
+            final long deliverStartNanos = System.nanoTime();
             HashMap<Integer, Set<Candidate>> allProposals = new HashMap<>();
 
             for (int i = 0; i < numNodes; i++) {
-                Set<Transaction> proposals = nodes[i].sendToFollowers();
+                Set<Transaction> proposals = allNodeProposals.get(i);
                 for (Transaction tx : proposals) {
                     if (!validTxIds.contains(tx.id))
                         continue; // ensure that each tx is actually valid
@@ -134,15 +213,41 @@ public class Simulation {
             }
 
             // Distribute the Proposals to their intended recipients as Candidates
+            final long receiveStartNanos = System.nanoTime();
             for (int i = 0; i < numNodes; i++) {
+                RoundMetrics.setContext(round, i);
                 if (allProposals.containsKey(i))
                     nodes[i].receiveFromFollowees(allProposals.get(i));
             }
+            final long receiveEndNanos = System.nanoTime();
+            RoundMetrics.setContext(round, RoundMetrics.ALL_NODES);
+
+            if (RoundMetrics.isEnabled()) {
+                int nCandidates = 0;
+                for (final Set<Candidate> candidates : allProposals.values()) {
+                    nCandidates += candidates.size();
+                }
+                RoundMetrics.record("sendNanos", deliverStartNanos - sendStartNanos);
+                RoundMetrics.record("deliverNanos", receiveStartNanos - deliverStartNanos);
+                RoundMetrics.record("receiveNanos", receiveEndNanos - receiveStartNanos);
+                RoundMetrics.record("candidates", nCandidates);
+                RoundMetrics.record("candidateBytes", (double) nCandidates * CANDIDATE_BYTES);
+            }
 
             consensusReached(numNodes, nodes);
 
         }
 
+        if (metricsFile != null) {
+            RoundMetrics.export(Paths.get(metricsFile));
+            log(STD_VERBOSITY, String.format("metrics written to(%s)", metricsFile));
+        }
+
+        final List<Set<Transaction>> consensusSets = new ArrayList<>(numNodes);
+        for (int i = 0; i < numNodes; i++) {
+            consensusSets.add(nodes[i].sendToFollowers());
+        }
+        return consensusSets;
     }
 
     private static Node createMaliciousNode(double p_graph, double p_malicious, double p_txDistribution, int numRounds) {
@@ -157,6 +262,7 @@ public class Simulation {
         final Map<Set<Transaction>, Integer> transactionSets = new HashMap<>();
         for (int i = 0; i < numNodes; i++) {
             final Set<Transaction> transactions = nodes[i].sendToFollowers();
+            RoundMetrics.record(i, "setSize", transactions.size());
 //            originalTxReport(i, transactions);
             final Integer currentCount = transactionSets.get(transactions);
             transactionSets.put(transactions, (currentCount == null) ? 1 : currentCount + 1);
@@ -198,6 +304,10 @@ public class Simulation {
             )
         );
 
+        RoundMetrics.record("distinctSets", transactionSets.size());
+        RoundMetrics.record("winnerSetSize", winnerEntry == null ? 0d : winnerEntry.getKey().size());
+        RoundMetrics.record("consensusPct", winnerEntry == null ? 0d : 100d * winnerEntry.getValue() / totalWeight);
+
         return transactionSets.size() == 1;
     }
 
@@ -215,6 +325,22 @@ public class Simulation {
         System.out.println();
     }
 
+    /**
+     *  @param file file name, or null
+     *  @param suffix suffix to add to the name, ahead of its extension
+     *  @return {@code file} with {@code suffix} added, or null if {@code file} is null
+     */
+    private static String suffixed(final String file, final String suffix) {
+        if (file == null) {
+            return null;
+        }
+        final int extension = file.lastIndexOf('.');
+        final int name = Math.max(file.lastIndexOf('/'), file.lastIndexOf('\\')) + 1;
+        return (extension <= name)
+            ? file + suffix
+            : file.substring(0, extension) + suffix + file.substring(extension);
+    }
+
     private static void log(final int level, final String message) {
         if (level <= VERBOSITY) {
             System.out.println(message);
@@ -1,9 +1,19 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.TreeSet;
 import java.util.function.Function;
 
 /**
@@ -13,9 +23,32 @@ import java.util.function.Function;
  */
 public class MaxFeeTxHandler {
     
+    /** true if validation details are logged */
+    private static volatile boolean sLogging = true;
+
+    /**
+     *  Receives the ledger history of a handler (e.g., to be written to a transaction log)
+     */
+    public interface TxLog {
+        
+        /**
+         *  @param utxoPool ledger state from which subsequent epochs are to be replayed
+         */
+        void writeUtxoPool(UTXOPool utxoPool) throws IOException;
+        
+        /**
+         *  @param acceptedTxs transactions accepted by an epoch, in the order they were applied
+         */
+        void writeEpoch(Transaction[] acceptedTxs) throws IOException;
+        
+    }
+
     /** truth source: transaction ledger */
     private final UTXOPool mUtxoPool;
     
+    /** log receiving each accepted epoch, or null if none */
+    private TxLog mTxLog;
+    
     /**
      * Creates a public ledger whose current UTXOPool (collection of unspent transaction outputs) is
      * {@code utxoPool}. This should make a copy of utxoPool by using the UTXOPool(UTXOPool uPool)
@@ -29,6 +62,21 @@ public class MaxFeeTxHandler {
         return mUtxoPool;
     }
 
+    /**
+     *  @param txLog log to receive the current UTXO pool and each subsequently accepted
+     *               epoch, or null to stop logging
+     */
+    public void setTxLog(final TxLog txLog) {
+        if (txLog != null) {
+            try {
+                txLog.writeUtxoPool(mUtxoPool);
+            } catch (final IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        mTxLog = txLog;
+    }
+
     /**
      * @return true if:
      * (1) all outputs claimed by {@code tx} are in the current UTXO pool, 
@@ -40,63 +88,62 @@ public class MaxFeeTxHandler {
      */
     public boolean isValidTx(final Transaction tx) {       
 
+        // cheap structural and value checks come first, and cryptography last, so that
+        // invalid transactions are rejected before any signature is verified
+
+        double sumOutputValues = 0d;
+        for (int i = 0; i < tx.numOutputs(); i++) {
+            
+            // all of txs output values are non-negative
+            final Transaction.Output txo = tx.getOutput(i);
+            if (txo.value < 0d) {
+                log("negative output value");
+                return false;
+            }
+            
+            sumOutputValues += txo.value;
+            
+        }
+        log("sum of output values = " + sumOutputValues);
+
         final Set<UTXO> utxoSet = new HashSet<>(tx.numInputs());
+        final PublicKey[] addresses = new PublicKey[tx.numInputs()];
         double sumInputValues = 0d;
         for (int i = 0; i < tx.numInputs(); i++) {
             
             final Transaction.Input txi = tx.getInput(i);
             final UTXO txiUtxo = new UTXO(txi.prevTxHash, txi.outputIndex);
-            final Transaction.Output txio = mUtxoPool.getTxOutput(txiUtxo);
 
-            // all outputs claimed by tx are in the current UTXO pool
-            if (txio == null) {
-                log("tx not found in UTXO pool");
-                return false;
-            }
-
-            // the signatures on each input of tx are valid
-            final byte[] rawDataToSign = tx.getRawDataToSign(i);
-            if (rawDataToSign == null) {
-                log("getRawDataToSign returns null");
-                return false;
-            }
-            
-            if (!Crypto.verifySignature(txio.address, rawDataToSign, txi.signature)) {
-                log("signature doesn't match");
-                return false;
-            }
-            
             // no UTXO is claimed multiple times by tx
             if (!utxoSet.add(txiUtxo)) {
-                System.out.println("double txiUtxo");
+                log("double txiUtxo");
                 return false;
             }
             
-            sumInputValues += txio.value;
-            
-        }
-        System.out.println("sum of input values = " + sumInputValues);
-
-        double sumOutputValues = 0d;
-        for (int i = 0; i < tx.numOutputs(); i++) {
-            
-            // all of txs output values are non-negative
-            final Transaction.Output txo = tx.getOutput(i);
-            if (txo.value < 0d) {
-                log("double-counted txiUtxo");
+            // all outputs claimed by tx are in the current UTXO pool
+            final Transaction.Output txio = mUtxoPool.getTxOutput(txiUtxo);
+            if (txio == null) {
+                log("tx not found in UTXO pool");
                 return false;
             }
-            
-            sumOutputValues += txo.value;
+
+            addresses[i] = txio.address;
+            sumInputValues += txio.value;
             
         }
-        System.out.println("sum of output values = " + sumOutputValues);
+        log("sum of input values = " + sumInputValues);
         
         // sum of txs input values is greater than or equal to the sum of its output values
         if (sumInputValues < sumOutputValues) {
             log("sum of input less than sum of output values");
             return false;
         }
+
+        // the signatures on each input of tx are valid
+        if (!SignatureVerifier.verifyAll(tx, addresses)) {
+            log("signature doesn't match");
+            return false;
+        }
         
         log("tx is valid");
         return true;
@@ -113,31 +160,38 @@ public class MaxFeeTxHandler {
         final Function<Transaction, Double> txValue = (
             t -> {
                 if (!isValidTx(t)) {
-                    log("transaction " + t + " is invalid");
+                    if (sLogging) {
+                        log("transaction " + t + " is invalid");
+                    }
                     return Double.MAX_VALUE;  // invalid transactions get the largest possible value so they'll be considered last
                 }
                 final double inputValue = t.getInputs().stream().mapToDouble(i -> mUtxoPool.getTxOutput(new UTXO(i.prevTxHash, i.outputIndex)).value).sum();
                 final double outputValue = t.getOutputs().stream().mapToDouble(i -> i.value).sum();
                 double v = inputValue - outputValue;
-                log("transaction " + t + " has value " + v);
+                if (sLogging) {
+                    log("transaction " + t + " has value " + v);
+                }
                 return -v;  // negate in order to order highest values first
             }
         );
         
-        // order the transactions by value (highest valued transactions first) 
-        final Set<Transaction> orderedTxs = new TreeSet<>(
-            (t1, t2) -> {
-                final double t1Value = txValue.apply(t1);
-                final double t2Value = txValue.apply(t2);
-                return (t1Value == t2Value) ? 0 : (t1Value < t2Value) ? -1 : 1;
-            }
-        );
+        // evaluate each transaction once, rather than on every comparison made while ordering
+        final Map<Transaction, Double> txValues = new LinkedHashMap<>(possibleTxs.length);
+        for (final Transaction ptx : possibleTxs) {
+            txValues.computeIfAbsent(ptx, txValue);
+        }
         
         final List<Transaction> unorderedTxs = Arrays.asList(possibleTxs);
-        log("unordered txs " + unorderedTxs);
+        if (sLogging) {
+            log("unordered txs " + unorderedTxs);
+        }
         
-        orderedTxs.addAll(unorderedTxs);
-        log("ordered txs " + orderedTxs);
+        // order the transactions by value (highest valued transactions first) 
+        final List<Transaction> orderedTxs = new ArrayList<>(txValues.keySet());
+        orderedTxs.sort(Comparator.comparingDouble(txValues::get));
+        if (sLogging) {
+            log("ordered txs " + orderedTxs);
+        }
         
         final Set<Transaction> validTxs = new LinkedHashSet<>(orderedTxs.size());        
         for (final Transaction ptx : orderedTxs) {
@@ -157,7 +211,15 @@ public class MaxFeeTxHandler {
             validTxs.add(ptx);
         }
         
-        return validTxs.toArray(new Transaction[validTxs.size()]);
+        final Transaction[] acceptedTxs = validTxs.toArray(new Transaction[validTxs.size()]);
+        if (mTxLog != null) {
+            try {
+                mTxLog.writeEpoch(acceptedTxs);
+            } catch (final IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return acceptedTxs;
     }
     
     
@@ -165,11 +227,158 @@ public class MaxFeeTxHandler {
     //  Private class methods
     //
     
+    /**
+     *  @param logging true to log validation details to standard output (default), false to
+     *                 log nothing (e.g., when measuring throughput)
+     */
+    public static void setLogging(final boolean logging) {
+        sLogging = logging;
+    }
+    
     /**
      *  @param message message to log (if logging enabled)
      */
     private static void log(String message) {
-        System.out.println(message);
+        if (sLogging) {
+            System.out.println(message);
+        }
+    }
+
+    
+    //
+    //  Private classes
+    //
+    
+    /**
+     *  Signature verification equivalent to {@code Crypto.verifySignature}, but which keeps
+     *  per-thread {@link Signature} instances already initialized for recently seen public keys,
+     *  so that repeated verifications against the same address cost only the RSA math
+     */
+    private static final class SignatureVerifier {
+        
+        /** signature algorithm used by {@code Crypto.verifySignature} */
+        private static final String ALGORITHM = "SHA256withRSA";
+        
+        /** maximum number of initialized verifiers retained per thread */
+        private static final int VERIFIER_CACHE_SIZE = 1024;
+        
+        /** per-thread verifiers, initialized for their public key (least recently used first) */
+        private static final ThreadLocal<Map<PublicKey, Signature>> VERIFIERS = ThreadLocal.withInitial(
+            () -> new LinkedHashMap<PublicKey, Signature>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(final Map.Entry<PublicKey, Signature> eldest) {
+                    return size() > VERIFIER_CACHE_SIZE;
+                }
+            }
+        );
+        
+        /**
+         *  @param tx transaction whose input signatures are to be verified
+         *  @param addresses addresses of the outputs claimed by each input of {@code tx}
+         *  @return true if the signature on each input of {@code tx} is valid for its address
+         */
+        static boolean verifyAll(final Transaction tx, final PublicKey[] addresses) {
+            // the outputs are serialized once, and only if the transaction has inputs
+            final SigningPayloads payloads = (addresses.length == 0) ? null : new SigningPayloads(tx);
+            for (int i = 0; i < addresses.length; i++) {
+                if (!verifyInput(tx, payloads, i, addresses[i])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        
+        /**
+         *  @param tx transaction whose input signature is to be verified
+         *  @param payloads signing payloads of {@code tx}
+         *  @param index index of the input of {@code tx}
+         *  @param address address of the output claimed by the input
+         *  @return true if the signature on the input is valid for {@code address}
+         */
+        static boolean verifyInput(
+            final Transaction tx,
+            final SigningPayloads payloads,
+            final int index,
+            final PublicKey address
+        ) {
+            final byte[] signature = tx.getInput(index).signature;
+            if (address == null || signature == null) {
+                return false;
+            }
+            final Map<PublicKey, Signature> verifiers = VERIFIERS.get();
+            try {
+                // each input's payload is fed straight into its verifier, and a completed
+                // verify() resets the verifier to its just-initialized state
+                Signature verifier = verifiers.get(address);
+                if (verifier == null) {
+                    verifier = Signature.getInstance(ALGORITHM);
+                    verifier.initVerify(address);
+                    verifiers.put(address, verifier);
+                }
+                payloads.update(verifier, index);
+                return verifier.verify(signature);
+            } catch (final GeneralSecurityException e) {
+                // discard the verifier, since its state is no longer known
+                verifiers.remove(address);
+                e.printStackTrace();
+                return false;
+            }
+        }
+        
+    }
+    
+    /**
+     *  Produces the same per-input signing payloads as {@code Transaction.getRawDataToSign}, but
+     *  serializes the transaction's outputs (the part shared by every input's payload) only once,
+     *  and feeds each payload directly into a {@link Signature} without assembling it
+     */
+    private static final class SigningPayloads {
+        
+        /** transaction whose inputs are to be verified */
+        private final Transaction mTx;
+        
+        /** serialized outputs of {@link #mTx}: the common suffix of every input's payload */
+        private final byte[] mOutputsData;
+        
+        /** reusable buffer for the serialized output index of an input */
+        private final ByteBuffer mOutputIndexBuffer = ByteBuffer.allocate(Integer.SIZE / 8);
+        
+        /**
+         *  @param tx transaction whose inputs are to be verified; its outputs must not be
+         *            changed while this object is in use
+         */
+        SigningPayloads(final Transaction tx) {
+            mTx = tx;
+            final byte[][] addresses = new byte[tx.numOutputs()][];
+            int length = 0;
+            for (int i = 0; i < addresses.length; i++) {
+                addresses[i] = tx.getOutput(i).address.getEncoded();
+                length += Double.SIZE / 8 + addresses[i].length;
+            }
+            final ByteBuffer outputsData = ByteBuffer.allocate(length);
+            for (int i = 0; i < addresses.length; i++) {
+                outputsData.putDouble(tx.getOutput(i).value);
+                outputsData.put(addresses[i]);
+            }
+            mOutputsData = outputsData.array();
+        }
+        
+        /**
+         *  Feeds the payload of an input into a signature, as if by
+         *  {@code signature.update(tx.getRawDataToSign(index))}
+         *  @param signature signature initialized for verification
+         *  @param index index of the input of the transaction
+         */
+        void update(final Signature signature, final int index) throws SignatureException {
+            final Transaction.Input txi = mTx.getInput(index);
+            if (txi.prevTxHash != null) {
+                signature.update(txi.prevTxHash);
+            }
+            mOutputIndexBuffer.putInt(0, txi.outputIndex);
+            signature.update(mOutputIndexBuffer.array());
+            signature.update(mOutputsData);
+        }
+        
     }
 
 }
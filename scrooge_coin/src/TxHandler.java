@@ -1,5 +1,22 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.IntStream;
 
 /**
  *  Coursera Introduction to Crypto Currency Course
@@ -8,16 +25,101 @@ import java.util.Set;
  */
 public class TxHandler {
 
+    /** default number of committed epochs which can be rolled back */
+    public static final int DEFAULT_JOURNAL_DEPTH = 8;
+
+    /** true if validation details are logged */
+    private static volatile boolean sLogging = true;
+
+    /**
+     *  Receives the ledger history of a handler (e.g., to be written to a transaction log)
+     */
+    public interface TxLog {
+        
+        /**
+         *  @param utxoPool ledger state from which subsequent epochs are to be replayed
+         *  @param journalDepth number of committed epochs which can be rolled back
+         */
+        void writeUtxoPool(UTXOPool utxoPool, int journalDepth) throws IOException;
+        
+        /**
+         *  @param acceptedTxs transactions accepted by an epoch, in the order they were applied
+         */
+        void writeEpoch(Transaction[] acceptedTxs) throws IOException;
+        
+        /**
+         *  the most recently written (and not yet rolled back) epoch was rolled back
+         */
+        void writeRollback() throws IOException;
+        
+    }
+
     /** truth source: transaction ledger */
     private final UTXOPool mUtxoPool;
     
+    /** log receiving each accepted epoch, or null if none */
+    private TxLog mTxLog;
+    
+    /** maximum number of undo journals retained */
+    private final int mJournalDepth;
+    
+    /** undo journals of the most recently committed epochs (most recent last) */
+    private final Deque<EpochJournal> mEpochJournals;
+    
+    /**
+     *  guards {@link #mUtxoPool} against the stateless stage of {@link #handleTxsAsync}, which
+     *  reads it while an earlier epoch is being committed
+     */
+    private final Lock mPoolReadLock;
+    private final Lock mPoolWriteLock;
+    
+    /** completes once the most recently submitted asynchronous epoch has been committed */
+    private CompletableFuture<Void> mPipelineTail = CompletableFuture.completedFuture(null);
+    
+    /** most recently submitted asynchronous epoch: may create outputs spent by the next one */
+    private Transaction[] mLastSubmittedTxs = new Transaction[0];
+    
     /**
      * Creates a public ledger whose current UTXOPool (collection of unspent transaction outputs) is
      * {@code utxoPool}. This should make a copy of utxoPool by using the UTXOPool(UTXOPool uPool)
      * constructor.
      */
     public TxHandler(final UTXOPool utxoPool) {
+        this(utxoPool, DEFAULT_JOURNAL_DEPTH);
+    }
+
+    /**
+     * @param utxoPool initial ledger (copied)
+     * @param journalDepth number of committed epochs which can be rolled back (0 to disable)
+     */
+    public TxHandler(final UTXOPool utxoPool, final int journalDepth) {
+        if (journalDepth < 0) {
+            throw new IllegalArgumentException("journalDepth(" + journalDepth + ")");
+        }
         mUtxoPool = new UTXOPool(utxoPool);
+        mJournalDepth = journalDepth;
+        mEpochJournals = new ArrayDeque<>();
+        final ReentrantReadWriteLock poolLock = new ReentrantReadWriteLock();
+        mPoolReadLock = poolLock.readLock();
+        mPoolWriteLock = poolLock.writeLock();
+    }
+
+    /**
+     *  @param txLog log to receive the current UTXO pool and each subsequently accepted
+     *               epoch, or null to stop logging.  Epochs committed before the UTXO pool is
+     *               logged can't be replayed, so starting a log discards their undo journals.
+     */
+    public void setTxLog(final TxLog txLog) {
+        awaitPipeline();
+        if (txLog != null) {
+            try {
+                txLog.writeUtxoPool(mUtxoPool, mJournalDepth);
+            } catch (final IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            mEpochJournals.clear();
+        }
+        mTxLog = txLog;
     }
 
     /**
@@ -30,95 +132,322 @@ public class TxHandler {
      *     values; and false otherwise.
      */
     public boolean isValidTx(final Transaction tx) {       
+        awaitPipeline();
+        return isValidTx(tx, null);
+    }
+
+    /**
+     * Handles each epoch by receiving an unordered array of proposed transactions, checking each
+     * transaction for correctness, returning a mutually valid array of accepted transactions, and
+     * updating the current UTXO pool as appropriate.
+     */
+    public Transaction[] handleTxs(final Transaction[] possibleTxs) {
+        awaitPipeline();
+        return commitEpoch(possibleTxs, null);
+    }
+    
+    /**
+     * Asynchronous, pipelined version of {@link #handleTxs}: the stateless validation of an
+     * epoch (structure and signatures) starts immediately, overlapping the commit of earlier
+     * epochs, while its stateful validation and commit wait until all previously submitted
+     * epochs have been committed.  Epochs are committed in submission order.  Other methods of
+     * this handler wait for pending epochs, but should not be called concurrently from other
+     * threads.
+     * @return future completing with the accepted transactions of the epoch
+     */
+    public synchronized CompletableFuture<Transaction[]> handleTxsAsync(final Transaction[] possibleTxs) {
+        
+        final Transaction[] previousTxs = mLastSubmittedTxs;
+        mLastSubmittedTxs = possibleTxs;
+        
+        // stage 1: stateless validation, overlapping the commit of earlier epochs
+        final CompletableFuture<PublicKey[][]> verified = CompletableFuture.supplyAsync(
+            () -> preverifyEpoch(possibleTxs, previousTxs)
+        );
+        
+        // stage 2: stateful validation and commit, once the previous epoch is published
+        final CompletableFuture<Transaction[]> accepted = mPipelineTail.thenCombineAsync(
+            verified,
+            (ignored, verifiedAddresses) -> commitEpoch(possibleTxs, verifiedAddresses)
+        );
+        
+        // a failed epoch doesn't prevent later ones from being committed
+        mPipelineTail = accepted.handle((txs, e) -> null);
+        return accepted;
+    }
+    
+    /**
+     * Reverts the UTXO pool to its state before the most recently committed (and not yet
+     * rolled back) epoch, in time proportional to the size of that epoch.
+     * @return true if an epoch was rolled back; false if no undo journal is retained
+     */
+    public boolean rollbackEpoch() {
+        awaitPipeline();
+        final EpochJournal journal = mEpochJournals.pollLast();
+        if (journal == null) {
+            log("no epoch available to roll back");
+            return false;
+        }
+        mPoolWriteLock.lock();
+        try {
+            journal.undo(mUtxoPool);
+        } finally {
+            mPoolWriteLock.unlock();
+        }
+        if (mTxLog != null) {
+            try {
+                mTxLog.writeRollback();
+            } catch (final IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * @return number of committed epochs which can currently be rolled back
+     */
+    public int getRollbackDepth() {
+        awaitPipeline();
+        return mEpochJournals.size();
+    }
+    
+    
+    //
+    //  Private methods
+    //
+    
+    /**
+     *  @param tx transaction to validate against the current UTXO pool
+     *  @param verifiedAddresses addresses for which each input's signature has already been
+     *                           verified (null entries if not), or null if none have been
+     *  @return true if {@code tx} is valid, as defined by {@link #isValidTx(Transaction)}
+     */
+    private boolean isValidTx(final Transaction tx, final PublicKey[] verifiedAddresses) {
+
+        // cheap structural and value checks come first, and cryptography last, so that
+        // invalid transactions are rejected before any signature is verified
+
+        double sumOutputValues = 0d;
+        for (int i = 0; i < tx.numOutputs(); i++) {
+            
+            // all of txs output values are non-negative
+            final Transaction.Output txo = tx.getOutput(i);
+            if (txo.value < 0d) {
+                log("negative output value");
+                return false;
+            }
+            
+            sumOutputValues += txo.value;
+            
+        }
+        log("sum of output values = " + sumOutputValues);
 
         final Set<UTXO> utxoSet = new HashSet<>(tx.numInputs());
+        final PublicKey[] addresses = new PublicKey[tx.numInputs()];
         double sumInputValues = 0d;
         for (int i = 0; i < tx.numInputs(); i++) {
             
             final Transaction.Input txi = tx.getInput(i);
             final UTXO txiUtxo = new UTXO(txi.prevTxHash, txi.outputIndex);
-            final Transaction.Output txio = mUtxoPool.getTxOutput(txiUtxo);
 
-            // all outputs claimed by tx are in the current UTXO pool
-            if (txio == null) {
-                log("tx not found in UTXO pool");
-                return false;
-            }
-
-            // the signatures on each input of tx are valid
-            final byte[] rawDataToSign = tx.getRawDataToSign(i);
-            if (rawDataToSign == null) {
-                log("getRawDataToSign returns null");
-                return false;
-            }
-            
-            if (!Crypto.verifySignature(txio.address, rawDataToSign, txi.signature)) {
-                log("signature doesn't match");
-                return false;
-            }
-            
             // no UTXO is claimed multiple times by tx
             if (!utxoSet.add(txiUtxo)) {
-                System.out.println("double txiUtxo");
+                log("double txiUtxo");
                 return false;
             }
             
-            sumInputValues += txio.value;
-            
-        }
-        System.out.println("sum of input values = " + sumInputValues);
-
-        double sumOutputValues = 0d;
-        for (int i = 0; i < tx.numOutputs(); i++) {
-            
-            // all of txs output values are non-negative
-            final Transaction.Output txo = tx.getOutput(i);
-            if (txo.value < 0d) {
-                log("double-counted txiUtxo");
+            // all outputs claimed by tx are in the current UTXO pool
+            final Transaction.Output txio = mUtxoPool.getTxOutput(txiUtxo);
+            if (txio == null) {
+                log("tx not found in UTXO pool");
                 return false;
             }
-            
-            sumOutputValues += txo.value;
+
+            addresses[i] = txio.address;
+            sumInputValues += txio.value;
             
         }
-        System.out.println("sum of output values = " + sumOutputValues);
+        log("sum of input values = " + sumInputValues);
         
         // sum of txs input values is greater than or equal to the sum of its output values
         if (sumInputValues < sumOutputValues) {
             log("sum of input less than sum of output values");
             return false;
         }
+
+        // the signatures on each input of tx are valid
+        if (!SignatureVerifier.verifyAll(tx, addresses, verifiedAddresses)) {
+            log("signature doesn't match");
+            return false;
+        }
         
         log("tx is valid");
         return true;
     }
 
     /**
-     * Handles each epoch by receiving an unordered array of proposed transactions, checking each
-     * transaction for correctness, returning a mutually valid array of accepted transactions, and
-     * updating the current UTXO pool as appropriate.
+     *  Stateful validation and commit of an epoch; see {@link #handleTxs}
+     *  @param possibleTxs proposed transactions
+     *  @param verifiedAddresses for each proposed transaction, the addresses for which its
+     *                           inputs' signatures have already been verified, or null if none
+     *  @return accepted transactions
      */
-    public Transaction[] handleTxs(final Transaction[] possibleTxs) {
+    private Transaction[] commitEpoch(final Transaction[] possibleTxs, final PublicKey[][] verifiedAddresses) {
         
-        final Set<Transaction> validTxs = new HashSet<>(possibleTxs.length);
-        for (final Transaction ptx : possibleTxs) {
-            if (!isValidTx(ptx) || validTxs.contains(ptx)) {
+        final EpochJournal journal = (mJournalDepth > 0) ? new EpochJournal() : null;
+        // accepted transactions are kept in the order they were applied to the ledger
+        final Set<Transaction> validTxs = new LinkedHashSet<>(possibleTxs.length);
+        for (int t = 0; t < possibleTxs.length; t++) {
+            final Transaction ptx = possibleTxs[t];
+            if (
+                validTxs.contains(ptx)
+                || !isValidTx(ptx, (verifiedAddresses == null) ? null : verifiedAddresses[t])
+            ) {
                 // ignore invalid or duplicate transactions
                 continue;
             }
-            // remove "consumed" ledger entries
-            for (final Transaction.Input txi : ptx.getInputs()) {
-                mUtxoPool.removeUTXO(new UTXO(txi.prevTxHash, txi.outputIndex));
-            }
-            // add the new (validated) transaction to the ledger
-            for (int i = 0; i < ptx.numOutputs(); i++) {
-                final Transaction.Output txo = ptx.getOutput(i);
-                mUtxoPool.addUTXO(new UTXO(ptx.getHash(), i), txo);
+            mPoolWriteLock.lock();
+            try {
+                // remove "consumed" ledger entries
+                for (final Transaction.Input txi : ptx.getInputs()) {
+                    final UTXO txiUtxo = new UTXO(txi.prevTxHash, txi.outputIndex);
+                    if (journal != null) {
+                        journal.removing(txiUtxo, mUtxoPool.getTxOutput(txiUtxo));
+                    }
+                    mUtxoPool.removeUTXO(txiUtxo);
+                }
+                // add the new (validated) transaction to the ledger
+                for (int i = 0; i < ptx.numOutputs(); i++) {
+                    final Transaction.Output txo = ptx.getOutput(i);
+                    final UTXO txoUtxo = new UTXO(ptx.getHash(), i);
+                    if (journal != null) {
+                        journal.adding(txoUtxo, mUtxoPool.getTxOutput(txoUtxo));
+                    }
+                    mUtxoPool.addUTXO(txoUtxo, txo);
+                }
+            } finally {
+                mPoolWriteLock.unlock();
             }
             validTxs.add(ptx);
         }
         
-        return validTxs.toArray(new Transaction[validTxs.size()]);
+        if (journal != null) {
+            if (mEpochJournals.size() == mJournalDepth) {
+                // forget the oldest epoch to keep journal memory bounded
+                mEpochJournals.removeFirst();
+            }
+            mEpochJournals.addLast(journal);
+        }
+        
+        final Transaction[] acceptedTxs = validTxs.toArray(new Transaction[validTxs.size()]);
+        if (mTxLog != null) {
+            try {
+                mTxLog.writeEpoch(acceptedTxs);
+            } catch (final IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return acceptedTxs;
+    }
+    
+    /**
+     *  Stateless validation of an epoch: verifies the signatures of inputs whose claimed outputs
+     *  can be found without waiting for earlier epochs to be committed, i.e., in the UTXO pool
+     *  as currently published, in this epoch, or in the previously submitted epoch
+     *  @param possibleTxs proposed transactions
+     *  @param previousTxs transactions of the previously submitted epoch
+     *  @return for each proposed transaction, the addresses for which its inputs' signatures
+     *          were verified (null entries for inputs not verified)
+     */
+    private PublicKey[][] preverifyEpoch(final Transaction[] possibleTxs, final Transaction[] previousTxs) {
+        
+        final Map<ByteBuffer, Transaction> inFlightTxs = new HashMap<>();
+        for (final Transaction[] txs : new Transaction[][] { previousTxs, possibleTxs }) {
+            for (final Transaction tx : txs) {
+                if (tx.getHash() != null) {
+                    inFlightTxs.put(ByteBuffer.wrap(tx.getHash()), tx);
+                }
+            }
+        }
+        
+        final PublicKey[][] verifiedAddresses = new PublicKey[possibleTxs.length][];
+        IntStream.range(0, possibleTxs.length).parallel().forEach(
+            t -> verifiedAddresses[t] = preverifyTx(possibleTxs[t], inFlightTxs)
+        );
+        return verifiedAddresses;
+    }
+    
+    /**
+     *  @param tx proposed transaction
+     *  @param inFlightTxs transactions submitted but not necessarily committed, by hash
+     *  @return addresses for which the inputs' signatures were verified (null entries for
+     *          inputs not verified), or null if {@code tx} is structurally invalid
+     */
+    private PublicKey[] preverifyTx(final Transaction tx, final Map<ByteBuffer, Transaction> inFlightTxs) {
+        
+        for (final Transaction.Output txo : tx.getOutputs()) {
+            if (txo.value < 0d) {
+                // will be rejected by stateful validation without any signature checks
+                return null;
+            }
+        }
+        
+        final PublicKey[] verifiedAddresses = new PublicKey[tx.numInputs()];
+        SigningPayloads payloads = null;
+        for (int i = 0; i < tx.numInputs(); i++) {
+            final Transaction.Input txi = tx.getInput(i);
+            if (txi.prevTxHash == null) {
+                continue;
+            }
+            final PublicKey address = findAddress(txi, inFlightTxs);
+            if (address == null) {
+                // left to stateful validation
+                continue;
+            }
+            if (payloads == null) {
+                payloads = new SigningPayloads(tx);
+            }
+            if (!SignatureVerifier.verifyInput(tx, payloads, i, address)) {
+                // rejected, or claims a different output, once stateful validation runs
+                return verifiedAddresses;
+            }
+            verifiedAddresses[i] = address;
+        }
+        return verifiedAddresses;
+    }
+    
+    /**
+     *  @param txi input of a proposed transaction
+     *  @param inFlightTxs transactions submitted but not necessarily committed, by hash
+     *  @return address of the output claimed by {@code txi}, or null if it can't be found
+     */
+    private PublicKey findAddress(final Transaction.Input txi, final Map<ByteBuffer, Transaction> inFlightTxs) {
+        mPoolReadLock.lock();
+        try {
+            final Transaction.Output txio = mUtxoPool.getTxOutput(new UTXO(txi.prevTxHash, txi.outputIndex));
+            if (txio != null) {
+                return txio.address;
+            }
+        } finally {
+            mPoolReadLock.unlock();
+        }
+        final Transaction prevTx = inFlightTxs.get(ByteBuffer.wrap(txi.prevTxHash));
+        if (prevTx == null || txi.outputIndex < 0 || txi.outputIndex >= prevTx.numOutputs()) {
+            return null;
+        }
+        return prevTx.getOutput(txi.outputIndex).address;
+    }
+    
+    /**
+     *  Waits until all asynchronously submitted epochs have been committed
+     */
+    private void awaitPipeline() {
+        final CompletableFuture<Void> pipelineTail;
+        synchronized (this) {
+            pipelineTail = mPipelineTail;
+        }
+        pipelineTail.join();
     }
     
     
@@ -126,11 +455,224 @@ public class TxHandler {
     //  Private class methods
     //
     
+    /**
+     *  @param logging true to log validation details to standard output (default), false to
+     *                 log nothing (e.g., when measuring throughput)
+     */
+    public static void setLogging(final boolean logging) {
+        sLogging = logging;
+    }
+    
     /**
      *  @param message message to log (if logging enabled)
      */
     private static void log(String message) {
-        System.out.println(message);
+        if (sLogging) {
+            System.out.println(message);
+        }
+    }
+
+    
+    //
+    //  Private classes
+    //
+    
+    /**
+     *  Signature verification equivalent to {@code Crypto.verifySignature}, but which keeps
+     *  per-thread {@link Signature} instances already initialized for recently seen public keys,
+     *  so that repeated verifications against the same address cost only the RSA math
+     */
+    private static final class SignatureVerifier {
+        
+        /** signature algorithm used by {@code Crypto.verifySignature} */
+        private static final String ALGORITHM = "SHA256withRSA";
+        
+        /** maximum number of initialized verifiers retained per thread */
+        private static final int VERIFIER_CACHE_SIZE = 1024;
+        
+        /** per-thread verifiers, initialized for their public key (least recently used first) */
+        private static final ThreadLocal<Map<PublicKey, Signature>> VERIFIERS = ThreadLocal.withInitial(
+            () -> new LinkedHashMap<PublicKey, Signature>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(final Map.Entry<PublicKey, Signature> eldest) {
+                    return size() > VERIFIER_CACHE_SIZE;
+                }
+            }
+        );
+        
+        /**
+         *  @param tx transaction whose input signatures are to be verified
+         *  @param addresses addresses of the outputs claimed by each input of {@code tx}
+         *  @param verifiedAddresses addresses for which each input's signature has already been
+         *                           verified (null entries if not), or null if none have been
+         *  @return true if the signature on each input of {@code tx} is valid for its address
+         */
+        static boolean verifyAll(
+            final Transaction tx,
+            final PublicKey[] addresses,
+            final PublicKey[] verifiedAddresses
+        ) {
+            // the outputs are serialized once, and only if some input's signature needs verifying
+            SigningPayloads payloads = null;
+            for (int i = 0; i < addresses.length; i++) {
+                if (
+                    verifiedAddresses != null
+                    && verifiedAddresses[i] != null
+                    && verifiedAddresses[i].equals(addresses[i])
+                ) {
+                    continue;
+                }
+                if (payloads == null) {
+                    payloads = new SigningPayloads(tx);
+                }
+                if (!verifyInput(tx, payloads, i, addresses[i])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        
+        /**
+         *  @param tx transaction whose input signature is to be verified
+         *  @param payloads signing payloads of {@code tx}
+         *  @param index index of the input of {@code tx}
+         *  @param address address of the output claimed by the input
+         *  @return true if the signature on the input is valid for {@code address}
+         */
+        static boolean verifyInput(
+            final Transaction tx,
+            final SigningPayloads payloads,
+            final int index,
+            final PublicKey address
+        ) {
+            final byte[] signature = tx.getInput(index).signature;
+            if (address == null || signature == null) {
+                return false;
+            }
+            final Map<PublicKey, Signature> verifiers = VERIFIERS.get();
+            try {
+                // each input's payload is fed straight into its verifier, and a completed
+                // verify() resets the verifier to its just-initialized state
+                Signature verifier = verifiers.get(address);
+                if (verifier == null) {
+                    verifier = Signature.getInstance(ALGORITHM);
+                    verifier.initVerify(address);
+                    verifiers.put(address, verifier);
+                }
+                payloads.update(verifier, index);
+                return verifier.verify(signature);
+            } catch (final GeneralSecurityException e) {
+                // discard the verifier, since its state is no longer known
+                verifiers.remove(address);
+                e.printStackTrace();
+                return false;
+            }
+        }
+        
+    }
+    
+    /**
+     *  Produces the same per-input signing payloads as {@code Transaction.getRawDataToSign}, but
+     *  serializes the transaction's outputs (the part shared by every input's payload) only once,
+     *  and feeds each payload directly into a {@link Signature} without assembling it
+     */
+    private static final class SigningPayloads {
+        
+        /** transaction whose inputs are to be verified */
+        private final Transaction mTx;
+        
+        /** serialized outputs of {@link #mTx}: the common suffix of every input's payload */
+        private final byte[] mOutputsData;
+        
+        /** reusable buffer for the serialized output index of an input */
+        private final ByteBuffer mOutputIndexBuffer = ByteBuffer.allocate(Integer.SIZE / 8);
+        
+        /**
+         *  @param tx transaction whose inputs are to be verified; its outputs must not be
+         *            changed while this object is in use
+         */
+        SigningPayloads(final Transaction tx) {
+            mTx = tx;
+            final byte[][] addresses = new byte[tx.numOutputs()][];
+            int length = 0;
+            for (int i = 0; i < addresses.length; i++) {
+                addresses[i] = tx.getOutput(i).address.getEncoded();
+                length += Double.SIZE / 8 + addresses[i].length;
+            }
+            final ByteBuffer outputsData = ByteBuffer.allocate(length);
+            for (int i = 0; i < addresses.length; i++) {
+                outputsData.putDouble(tx.getOutput(i).value);
+                outputsData.put(addresses[i]);
+            }
+            mOutputsData = outputsData.array();
+        }
+        
+        /**
+         *  Feeds the payload of an input into a signature, as if by
+         *  {@code signature.update(tx.getRawDataToSign(index))}
+         *  @param signature signature initialized for verification
+         *  @param index index of the input of the transaction
+         */
+        void update(final Signature signature, final int index) throws SignatureException {
+            final Transaction.Input txi = mTx.getInput(index);
+            if (txi.prevTxHash != null) {
+                signature.update(txi.prevTxHash);
+            }
+            mOutputIndexBuffer.putInt(0, txi.outputIndex);
+            signature.update(mOutputIndexBuffer.array());
+            signature.update(mOutputsData);
+        }
+        
+    }
+    
+    /**
+     *  Net changes made to the UTXO pool by a single epoch: outpoints created by the epoch,
+     *  and the prior outputs of outpoints it removed (or overwrote).  Outpoints both created
+     *  and consumed within the epoch cancel out, so the journal never exceeds the epoch's size.
+     */
+    private static final class EpochJournal {
+        
+        /** outpoints (with their prior outputs) present before the epoch and removed or replaced by it */
+        private final Map<UTXO, Transaction.Output> mRemoved = new LinkedHashMap<>();
+        
+        /** outpoints added to the pool by the epoch */
+        private final Set<UTXO> mCreated = new HashSet<>();
+        
+        /**
+         *  @param utxo outpoint about to be removed from the pool
+         *  @param priorOutput output currently associated with {@code utxo}
+         */
+        void removing(final UTXO utxo, final Transaction.Output priorOutput) {
+            if (mCreated.remove(utxo)) {
+                // created and consumed within this epoch: no net change
+                return;
+            }
+            mRemoved.putIfAbsent(utxo, priorOutput);
+        }
+        
+        /**
+         *  @param utxo outpoint about to be added to the pool
+         *  @param priorOutput output currently associated with {@code utxo}, or null if none
+         */
+        void adding(final UTXO utxo, final Transaction.Output priorOutput) {
+            if (priorOutput != null) {
+                mRemoved.putIfAbsent(utxo, priorOutput);
+            }
+            mCreated.add(utxo);
+        }
+        
+        /**
+         *  @param utxoPool pool to which the epoch was applied; restored to its prior state
+         */
+        void undo(final UTXOPool utxoPool) {
+            for (final UTXO utxo : mCreated) {
+                utxoPool.removeUTXO(utxo);
+            }
+            for (final Map.Entry<UTXO, Transaction.Output> re : mRemoved.entrySet()) {
+                utxoPool.addUTXO(re.getKey(), re.getValue());
+            }
+        }
+        
     }
 
 }
@@ -0,0 +1,290 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ *  Coursera Introduction to Crypto Currency Course
+ *  Assignment1: Scrooge Coin<br />
+ *  Streams the records of a log written by {@link TxLogWriter} to a {@link Listener}, parsing
+ *  directly out of a memory-mapped view of the file.  Large files are mapped one window at a
+ *  time; each record must fit within a single window.
+ *  @author mross Marty Ross
+ */
+public final class TxLogReader implements Closeable {
+
+    /** maximum size of a single mapped window of the file */
+    private static final int MAX_WINDOW_SIZE = 1 << 30;
+
+    /** size of a record header: type byte and body length */
+    private static final int RECORD_HEADER_SIZE = 1 + Integer.SIZE / 8;
+
+    /**
+     *  Receives the records of a transaction log, in order
+     */
+    public interface Listener {
+
+        /**
+         *  @param utxoPool ledger state from which subsequent epochs are to be replayed
+         *  @param journalDepth number of committed epochs which the logging handler could roll back
+         */
+        void utxoPool(UTXOPool utxoPool, int journalDepth);
+
+        /**
+         *  @param acceptedTxs transactions accepted by an epoch, in the order they were applied
+         */
+        void epoch(Transaction[] acceptedTxs);
+
+        /**
+         *  the most recent (not yet rolled back) epoch was rolled back
+         */
+        void rollback();
+
+    }
+
+    /** log file */
+    private final FileChannel mChannel;
+    private final long mFileSize;
+
+    /** currently mapped window of the file, and its offset within the file */
+    private MappedByteBuffer mWindow;
+    private long mWindowOffset;
+
+    /** addresses in order of first appearance, as numbered by the writer */
+    private final List<PublicKey> mAddresses = new ArrayList<>();
+    private final KeyFactory mKeyFactory;
+
+    /** offset within the file of the record being parsed */
+    private long mRecordOffset;
+
+    /**
+     *  @param path log file written by {@link TxLogWriter}
+     */
+    public TxLogReader(final Path path) throws IOException {
+        mChannel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            mFileSize = mChannel.size();
+            mKeyFactory = KeyFactory.getInstance("RSA");
+            map(0L, 2 * Integer.SIZE / 8);
+            if (mWindow.getInt() != TxLogWriter.MAGIC) {
+                throw new IOException("not a transaction log: " + path);
+            }
+            final int version = mWindow.getInt();
+            if (version != TxLogWriter.VERSION) {
+                throw new IOException("unsupported transaction log version(" + version + ")");
+            }
+        } catch (final GeneralSecurityException e) {
+            mChannel.close();
+            throw new IllegalStateException(e);
+        } catch (final IOException | RuntimeException e) {
+            // don't leak the channel of a log which can't be read
+            mChannel.close();
+            throw e;
+        }
+    }
+
+    /**
+     *  @param listener receiver of each remaining record of the log
+     */
+    public void replay(final Listener listener) throws IOException {
+        long position = mWindowOffset + mWindow.position();
+        while (position < mFileSize) {
+            mRecordOffset = position;
+            map(position, RECORD_HEADER_SIZE);
+            final byte type = mWindow.get();
+            final int length = mWindow.getInt();
+            if (length < 0) {
+                throw corrupt("invalid record length(" + length + ")");
+            }
+            final long recordSize = RECORD_HEADER_SIZE + (long) length;
+            map(position, recordSize);
+            mWindow.position(mWindow.position() + RECORD_HEADER_SIZE);
+            // the body is parsed from a view of just this record, so it can't run into the next one
+            final ByteBuffer body = mWindow.slice();
+            body.limit(length);
+            try {
+                switch (type) {
+                    case TxLogWriter.UTXO_POOL_RECORD:
+                        final int journalDepth = body.getInt();
+                        if (journalDepth < 0) {
+                            throw corrupt("invalid journal depth(" + journalDepth + ")");
+                        }
+                        final UTXOPool utxoPool = readUtxoPool(body);
+                        requireConsumed(body);
+                        listener.utxoPool(utxoPool, journalDepth);
+                        break;
+                    case TxLogWriter.EPOCH_RECORD:
+                        final Transaction[] acceptedTxs = readEpoch(body);
+                        requireConsumed(body);
+                        listener.epoch(acceptedTxs);
+                        break;
+                    case TxLogWriter.ROLLBACK_RECORD:
+                        requireConsumed(body);
+                        listener.rollback();
+                        break;
+                    default:
+                        throw corrupt("unknown record type(" + type + ")");
+                }
+            } catch (final BufferUnderflowException e) {
+                throw corrupt("record length(" + length + ") shorter than its contents");
+            }
+            position += recordSize;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        mWindow = null;
+        mChannel.close();
+    }
+
+
+    //
+    //  Private methods
+    //
+
+    /**
+     *  Ensures that a range of the file is mapped, and positions the window at its start
+     *  @param position offset of the range within the file
+     *  @param length length of the range
+     */
+    private void map(final long position, final long length) throws IOException {
+        if (position + length > mFileSize) {
+            throw new IOException("truncated transaction log at offset(" + position + ")");
+        }
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("record too large to map at offset(" + position + ")");
+        }
+        if (mWindow == null || position < mWindowOffset || position + length > mWindowOffset + mWindow.limit()) {
+            final long size = Math.min(mFileSize - position, Math.max(MAX_WINDOW_SIZE, length));
+            mWindow = mChannel.map(FileChannel.MapMode.READ_ONLY, position, size);
+            mWindowOffset = position;
+        }
+        mWindow.position((int) (position - mWindowOffset));
+    }
+
+    /**
+     *  @param body body of the current record
+     *  @return UTXO pool snapshot at the current position of {@code body}
+     */
+    private UTXOPool readUtxoPool(final ByteBuffer body) throws IOException {
+        // outputs are inner objects of a transaction, so they need a (placeholder) owner
+        final Transaction owner = new Transaction();
+        final UTXOPool utxoPool = new UTXOPool();
+        final int count = readCount(body);
+        for (int i = 0; i < count; i++) {
+            final byte[] txHash = readBytes(body);
+            if (txHash == null) {
+                throw corrupt("missing UTXO transaction hash");
+            }
+            final int index = body.getInt();
+            final double value = body.getDouble();
+            utxoPool.addUTXO(new UTXO(txHash, index), owner.new Output(value, readAddress(body)));
+        }
+        return utxoPool;
+    }
+
+    /**
+     *  @param body body of the current record
+     *  @return transactions of the epoch at the current position of {@code body}
+     */
+    private Transaction[] readEpoch(final ByteBuffer body) throws IOException {
+        final Transaction[] txs = new Transaction[readCount(body)];
+        for (int t = 0; t < txs.length; t++) {
+            final Transaction tx = new Transaction();
+            tx.setHash(readBytes(body));
+            final int numInputs = readCount(body);
+            for (int i = 0; i < numInputs; i++) {
+                tx.addInput(readBytes(body), body.getInt());
+                tx.addSignature(readBytes(body), i);
+            }
+            final int numOutputs = readCount(body);
+            for (int i = 0; i < numOutputs; i++) {
+                final double value = body.getDouble();
+                tx.addOutput(value, readAddress(body));
+            }
+            txs[t] = tx;
+        }
+        return txs;
+    }
+
+    /**
+     *  @param body body of the current record
+     *  @return address at the current position of {@code body}
+     */
+    private PublicKey readAddress(final ByteBuffer body) throws IOException {
+        final int addressId = body.getInt();
+        if (addressId != TxLogWriter.NEW_ADDRESS) {
+            if (addressId < 0 || addressId >= mAddresses.size()) {
+                throw corrupt("invalid address id(" + addressId + ")");
+            }
+            return mAddresses.get(addressId);
+        }
+        try {
+            // each distinct address is decoded only once
+            final PublicKey address = mKeyFactory.generatePublic(new X509EncodedKeySpec(readBytes(body)));
+            mAddresses.add(address);
+            return address;
+        } catch (final GeneralSecurityException e) {
+            throw new IOException("invalid address at offset(" + mRecordOffset + ")", e);
+        }
+    }
+
+    /**
+     *  @param body body of the current record
+     *  @return byte array (possibly null) at the current position of {@code body}
+     */
+    private byte[] readBytes(final ByteBuffer body) throws IOException {
+        final int length = body.getInt();
+        if (length == TxLogWriter.NULL_BYTES) {
+            return null;
+        }
+        if (length < 0 || length > body.remaining()) {
+            throw corrupt("invalid byte array length(" + length + ")");
+        }
+        final byte[] bytes = new byte[length];
+        body.get(bytes);
+        return bytes;
+    }
+
+    /**
+     *  @param body body of the current record
+     *  @return number of elements which follow in {@code body}
+     */
+    private int readCount(final ByteBuffer body) throws IOException {
+        final int count = body.getInt();
+        // every element takes at least one byte, which bounds what a corrupt count can allocate
+        if (count < 0 || count > body.remaining()) {
+            throw corrupt("invalid count(" + count + ")");
+        }
+        return count;
+    }
+
+    /**
+     *  @param body body of the current record, after parsing
+     */
+    private void requireConsumed(final ByteBuffer body) throws IOException {
+        if (body.hasRemaining()) {
+            throw corrupt("unparsed bytes(" + body.remaining() + ") in record");
+        }
+    }
+
+    /**
+     *  @param message description of the corruption
+     *  @return exception reporting corruption of the current record
+     */
+    private IOException corrupt(final String message) {
+        return new IOException(message + " at offset(" + mRecordOffset + ")");
+    }
+
+}
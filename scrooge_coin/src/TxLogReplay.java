@@ -0,0 +1,131 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.function.BooleanSupplier;
+import java.util.function.Function;
+
+/**
+ *  Coursera Introduction to Crypto Currency Course
+ *  Assignment1: Scrooge Coin<br />
+ *  Replays a transaction log written by {@link TxLogWriter} through {@link TxHandler} or
+ *  {@link MaxFeeTxHandler}, reporting validation throughput and any logged transactions
+ *  which are no longer accepted
+ *  @author mross Marty Ross
+ */
+public class TxLogReplay implements TxLogReader.Listener {
+
+    /** true to replay through {@link MaxFeeTxHandler}, false for {@link TxHandler} */
+    private final boolean mMaxFee;
+
+    /** {@code handleTxs} of the handler of the current ledger */
+    private Function<Transaction[], Transaction[]> mHandleTxs;
+
+    /** rollback of the handler of the current ledger, or null if unsupported */
+    private BooleanSupplier mRollback;
+
+    private long mEpochs;
+    private long mTxs;
+    private long mRejectedTxs;
+    private long mHandleNanos;
+
+    /**
+     *  @param maxFee true to replay through {@link MaxFeeTxHandler}, false for {@link TxHandler}
+     */
+    public TxLogReplay(final boolean maxFee) {
+        mMaxFee = maxFee;
+    }
+
+    /**
+     *  @param args log file, and (optionally) handler: {@code TxHandler} (default) or {@code MaxFeeTxHandler}
+     */
+    public static void main(final String[] args) throws IOException {
+
+        if (args.length < 1) {
+            System.err.println("usage: TxLogReplay <log file> [TxHandler|MaxFeeTxHandler]");
+            System.exit(1);
+        }
+
+        final Path logFile = Paths.get(args[0]);
+        final String handlerName = (args.length > 1) ? args[1] : TxHandler.class.getSimpleName();
+
+        final boolean maxFee;
+        if (handlerName.equals(TxHandler.class.getSimpleName())) {
+            maxFee = false;
+        } else if (handlerName.equals(MaxFeeTxHandler.class.getSimpleName())) {
+            maxFee = true;
+        } else {
+            throw new IllegalArgumentException("unknown handler(" + handlerName + ")");
+        }
+
+        // measure validation, not console output
+        TxHandler.setLogging(false);
+        MaxFeeTxHandler.setLogging(false);
+
+        final TxLogReplay replay = new TxLogReplay(maxFee);
+        final long startNanos = System.nanoTime();
+        try (final TxLogReader reader = new TxLogReader(logFile)) {
+            reader.replay(replay);
+        }
+        replay.report(System.nanoTime() - startNanos);
+
+    }
+
+    @Override
+    public void utxoPool(final UTXOPool utxoPool, final int journalDepth) {
+        // each snapshot starts a new ledger, able to roll back as far as the logged one
+        if (mMaxFee) {
+            final MaxFeeTxHandler maxFeeTxHandler = new MaxFeeTxHandler(utxoPool);
+            mHandleTxs = maxFeeTxHandler::handleTxs;
+            mRollback = null;
+        } else {
+            final TxHandler txHandler = new TxHandler(utxoPool, journalDepth);
+            mHandleTxs = txHandler::handleTxs;
+            mRollback = txHandler::rollbackEpoch;
+        }
+    }
+
+    @Override
+    public void epoch(final Transaction[] acceptedTxs) {
+        if (mHandleTxs == null) {
+            throw new IllegalStateException("epoch precedes initial UTXO pool");
+        }
+        final long startNanos = System.nanoTime();
+        final Transaction[] replayedTxs = mHandleTxs.apply(acceptedTxs);
+        mHandleNanos += System.nanoTime() - startNanos;
+        mEpochs++;
+        mTxs += acceptedTxs.length;
+        mRejectedTxs += acceptedTxs.length - replayedTxs.length;
+    }
+
+    @Override
+    public void rollback() {
+        if (mRollback == null) {
+            throw new UnsupportedOperationException("handler doesn't support rollback");
+        }
+        if (!mRollback.getAsBoolean()) {
+            // the replayed ledger would silently diverge from the logged one
+            throw new IllegalStateException("no epoch available to roll back at epoch(" + mEpochs + ")");
+        }
+    }
+
+
+    //
+    //  Private methods
+    //
+
+    /**
+     *  @param elapsedNanos total elapsed time of the replay
+     */
+    private void report(final long elapsedNanos) {
+        System.err.printf(
+            "epochs(%s), txs(%s), rejectedTxs(%s), elapsed(%.3fs), handleTxs(%.3fs), throughput(%.0f tx/s)\n",
+            mEpochs,
+            mTxs,
+            mRejectedTxs,
+            elapsedNanos / 1e9,
+            mHandleNanos / 1e9,
+            (mHandleNanos == 0) ? 0d : mTxs * 1e9 / mHandleNanos
+        );
+    }
+
+}
@@ -0,0 +1,187 @@
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.Flushable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.PublicKey;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ *  Coursera Introduction to Crypto Currency Course
+ *  Assignment1: Scrooge Coin<br />
+ *  Writes ledger history in a compact, length-prefixed binary format which can be replayed by
+ *  {@link TxLogReader}.  All numbers are big-endian:
+ *  <pre>
+ *  log     := MAGIC VERSION record*
+ *  record  := type:byte length:int body          (length is the size of body in bytes)
+ *  'U'     := journalDepth:int count:int { txHash:bytes index:int output }*
+ *                                                              (UTXO pool snapshot)
+ *  'E'     := count:int tx*                                    (accepted epoch)
+ *  'R'     := (empty)                                          (most recent epoch rolled back)
+ *  tx      := hash:bytes numInputs:int { prevTxHash:bytes outputIndex:int signature:bytes }*
+ *             numOutputs:int output*
+ *  output  := value:double address
+ *  address := id:int, followed by encoded:bytes only when id is -1 (first use of the address)
+ *  bytes   := length:int (-1 for null) byte*
+ *  </pre>
+ *  Addresses are numbered in order of first appearance, so each public key is written only once.
+ *  @author mross Marty Ross
+ */
+public final class TxLogWriter implements TxHandler.TxLog, MaxFeeTxHandler.TxLog, Closeable, Flushable {
+
+    /** identifies a transaction log file ("TXLG") */
+    static final int MAGIC = 0x54584c47;
+
+    /** version of the log format */
+    static final int VERSION = 2;
+
+    /** record type: UTXO pool snapshot */
+    static final byte UTXO_POOL_RECORD = 'U';
+
+    /** record type: accepted epoch */
+    static final byte EPOCH_RECORD = 'E';
+
+    /** record type: rollback of the most recent epoch */
+    static final byte ROLLBACK_RECORD = 'R';
+
+    /** address id introducing a previously unseen address */
+    static final int NEW_ADDRESS = -1;
+
+    /** length written in place of a null byte array */
+    static final int NULL_BYTES = -1;
+
+    /** log file stream */
+    private final DataOutputStream mOut;
+
+    /** reusable buffer holding the body of the record being written */
+    private final ByteArrayOutputStream mRecordBytes = new ByteArrayOutputStream();
+    private final DataOutputStream mRecord = new DataOutputStream(mRecordBytes);
+
+    /** id of each address written so far */
+    private final Map<PublicKey, Integer> mAddressIds = new HashMap<>();
+
+    /**
+     *  @param path log file to create (or replace)
+     */
+    public TxLogWriter(final Path path) throws IOException {
+        mOut = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path), 1 << 16));
+        mOut.writeInt(MAGIC);
+        mOut.writeInt(VERSION);
+    }
+
+    /**
+     *  @param utxoPool ledger state from which subsequent epochs are to be replayed, by a
+     *                  handler which can't roll back epochs
+     */
+    @Override
+    public void writeUtxoPool(final UTXOPool utxoPool) throws IOException {
+        writeUtxoPool(utxoPool, 0);
+    }
+
+    /**
+     *  @param utxoPool ledger state from which subsequent epochs are to be replayed
+     *  @param journalDepth number of committed epochs which can be rolled back
+     */
+    @Override
+    public void writeUtxoPool(final UTXOPool utxoPool, final int journalDepth) throws IOException {
+        mRecordBytes.reset();
+        mRecord.writeInt(journalDepth);
+        final List<UTXO> utxos = utxoPool.getAllUTXO();
+        mRecord.writeInt(utxos.size());
+        for (final UTXO utxo : utxos) {
+            writeBytes(utxo.getTxHash());
+            mRecord.writeInt(utxo.getIndex());
+            writeOutput(utxoPool.getTxOutput(utxo));
+        }
+        writeRecord(UTXO_POOL_RECORD);
+    }
+
+    /**
+     *  @param acceptedTxs transactions accepted by an epoch, in the order they were applied
+     */
+    @Override
+    public void writeEpoch(final Transaction[] acceptedTxs) throws IOException {
+        mRecordBytes.reset();
+        mRecord.writeInt(acceptedTxs.length);
+        for (final Transaction tx : acceptedTxs) {
+            writeBytes(tx.getHash());
+            mRecord.writeInt(tx.numInputs());
+            for (final Transaction.Input txi : tx.getInputs()) {
+                writeBytes(txi.prevTxHash);
+                mRecord.writeInt(txi.outputIndex);
+                writeBytes(txi.signature);
+            }
+            mRecord.writeInt(tx.numOutputs());
+            for (final Transaction.Output txo : tx.getOutputs()) {
+                writeOutput(txo);
+            }
+        }
+        writeRecord(EPOCH_RECORD);
+    }
+
+    /**
+     *  Records that the most recently written (and not yet rolled back) epoch was rolled back
+     */
+    @Override
+    public void writeRollback() throws IOException {
+        mRecordBytes.reset();
+        writeRecord(ROLLBACK_RECORD);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        mOut.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mOut.close();
+    }
+
+
+    //
+    //  Private methods
+    //
+
+    /**
+     *  @param type type of the record whose body has been written into {@link #mRecordBytes}
+     */
+    private void writeRecord(final byte type) throws IOException {
+        mOut.writeByte(type);
+        mOut.writeInt(mRecordBytes.size());
+        mRecordBytes.writeTo(mOut);
+    }
+
+    /**
+     *  @param txo output to append to the current record
+     */
+    private void writeOutput(final Transaction.Output txo) throws IOException {
+        mRecord.writeDouble(txo.value);
+        final Integer addressId = mAddressIds.get(txo.address);
+        if (addressId != null) {
+            mRecord.writeInt(addressId);
+            return;
+        }
+        mAddressIds.put(txo.address, mAddressIds.size());
+        mRecord.writeInt(NEW_ADDRESS);
+        writeBytes(txo.address.getEncoded());
+    }
+
+    /**
+     *  @param bytes byte array (possibly null) to append to the current record
+     */
+    private void writeBytes(final byte[] bytes) throws IOException {
+        if (bytes == null) {
+            mRecord.writeInt(NULL_BYTES);
+            return;
+        }
+        mRecord.writeInt(bytes.length);
+        mRecord.write(bytes);
+    }
+
+}